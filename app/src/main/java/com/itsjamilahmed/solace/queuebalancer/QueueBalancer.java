@@ -19,6 +19,8 @@ import com.itsjamilahmed.solace.semplib.monitor.model.SempMetaOnlyResponse;
 
 import com.google.gson.Gson;
 
+import okhttp3.Interceptor;
+
 public class QueueBalancer {
 
 	private static Logger logger = LogManager.getLogger(QueueBalancer.class);	// A log4j logger to handle all output
@@ -187,6 +189,17 @@ public class QueueBalancer {
 		importQueueNames(queues);
 	}
 
+	/**
+	 * Add an OkHttp interceptor to both the monitor and action SEMP API clients. <br>
+	 * Used to record the SEMP traffic of a run, or to replay a previous recording instead of contacting the broker.
+	 * @param interceptor e.g. a SempTrafficRecorder or SempTrafficReplayer
+	 */
+	public void addSempInterceptor(Interceptor interceptor) {
+
+		sempMonitorClient.setHttpClient(sempMonitorClient.getHttpClient().newBuilder().addInterceptor(interceptor).build());
+		sempActionClient.setHttpClient(sempActionClient.getHttpClient().newBuilder().addInterceptor(interceptor).build());
+	}
+
 	/**
 	 * Get a list of queue names that are being monitored for balancing
 	 * @return a string linked list of queue names 
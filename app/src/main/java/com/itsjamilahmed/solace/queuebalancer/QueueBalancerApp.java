@@ -1,16 +1,21 @@
 package com.itsjamilahmed.solace.queuebalancer;
 
+import java.io.Closeable;
+import java.io.IOException;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.MutuallyExclusiveGroup;
 import net.sourceforge.argparse4j.inf.Namespace;
 
 public class QueueBalancerApp {
 
 	private static Logger logger = LogManager.getLogger(QueueBalancerApp.class);	// A log4j logger to handle all output
 	private static Namespace argsParserResponse = null;								// argparse4j response after handling program arguments
+	private static Closeable sempTraffic = null;									// SEMP traffic recorder or replayer, if either was requested
 	
 	public static void main(String[] args) {
 
@@ -26,6 +31,24 @@ public class QueueBalancerApp {
 				argsParserResponse.getString("message_vpn"),
 				argsParserResponse.getString("queues_list").split(","));
 
+		// Optionally capture all SEMP traffic of this run to a file, or serve a previous capture back instead of contacting the broker.
+		try {
+			if (argsParserResponse.getString("semp_record") != null) {
+				SempTrafficRecorder recorder = new SempTrafficRecorder(argsParserResponse.getString("semp_record"));
+				myQueueBalancer.addSempInterceptor(recorder);
+				sempTraffic = recorder;
+			}
+			else if (argsParserResponse.getString("semp_replay") != null) {
+				Double replaySpeed = argsParserResponse.getDouble("replay_speed");
+				SempTrafficReplayer replayer = new SempTrafficReplayer(argsParserResponse.getString("semp_replay"), (replaySpeed == null) ? 1.0 : replaySpeed);
+				myQueueBalancer.addSempInterceptor(replayer);
+				sempTraffic = replayer;
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			logger.fatal("Could not set up SEMP traffic record/replay: " + e.getMessage());
+			System.exit(-1);
+		}
+
 		// How often to check the status, and when to perform the actual rebalancing, will depend on the use-case and expected message rates.
 		// As an example, running every 10 minutes and needing 2 consecutive 'true' status may be when a rebalance is done.
 		// This would allow for transient periods of imbalance to not trigger the move of messages, only persistently imbalanced periods.
@@ -34,6 +57,7 @@ public class QueueBalancerApp {
 			myQueueBalancer.determineBalancedStatus();
 		} catch (Exception e) {
 			logger.fatal(e.getMessage());
+			closeSempTraffic();
 			System.exit(-1);
 		}
 		
@@ -41,7 +65,21 @@ public class QueueBalancerApp {
 		
 		if (myQueueBalancer.isQueueRebalanceRequired()) {
 			myQueueBalancer.performQueueRebalancing();
-		}	
+		}
+
+		closeSempTraffic();
+	}
+
+	private static void closeSempTraffic () {
+
+		if (sempTraffic == null) {
+			return;
+		}
+		try {
+			sempTraffic.close();
+		} catch (IOException e) {
+			logger.error("Could not close SEMP traffic file: " + e.getMessage());
+		}
 	}
 	
 	private static void parseArguments (String[] args) {
@@ -59,19 +97,37 @@ public class QueueBalancerApp {
 			.required(true);
 		parser.addArgument("--semp-user")
 			.type(String.class)
-			.help("Admin user with read/write permission for the VPN")
-			.required(true);
+			.help("Admin user with read/write permission for the VPN. (Not needed with --semp-replay)");
 		parser.addArgument("--semp-password")
 			.type(String.class)
-			.help("Password of the admin user")
-			.required(true);
+			.help("Password of the admin user. (Not needed with --semp-replay)");
 		parser.addArgument("--queues-list")
 			.type(String.class)
 			.help("Comma seperated list of queue names. \ne.g. queue1,queue2,queue3")
 			.required(true);	
 		
+		MutuallyExclusiveGroup sempTrafficGroup = parser.addMutuallyExclusiveGroup();
+		sempTrafficGroup.addArgument("--semp-record")
+			.type(String.class)
+			.help("File to record all SEMP requests/responses and timings to. Compressed if name ends in .gz \ne.g. incident.semp.gz");
+		sempTrafficGroup.addArgument("--semp-replay")
+			.type(String.class)
+			.help("File of previously recorded SEMP traffic to serve back instead of contacting the broker");
+		parser.addArgument("--replay-speed")
+			.type(Double.class)
+			.help("Speed factor for replayed SEMP response times, only with --semp-replay. \ne.g. 1.0 (default) for original, 2.0 for twice as fast, 0 for no delay");
+		
 		try {
 			argsParserResponse = parser.parseArgs(args);
+
+			// Credentials are only used against a real broker, and the speed factor only applies to a replay.
+			boolean replaying = (argsParserResponse.getString("semp_replay") != null);
+			if (!replaying && (argsParserResponse.getString("semp_user") == null || argsParserResponse.getString("semp_password") == null)) {
+				throw new ArgumentParserException("arguments --semp-user and --semp-password are required", parser);
+			}
+			if (!replaying && argsParserResponse.getDouble("replay_speed") != null) {
+				throw new ArgumentParserException("argument --replay-speed: only valid with --semp-replay", parser);
+			}
 			
 		} catch (ArgumentParserException e) {
 			System.err.println(e.getMessage());
@@ -0,0 +1,63 @@
+package com.itsjamilahmed.solace.queuebalancer;
+
+import java.io.IOException;
+
+import okhttp3.Request;
+import okio.Buffer;
+
+/**
+ * A single recorded SEMP request/response pair, as written by {@link SempTrafficRecorder} and served back by {@link SempTrafficReplayer}. <br>
+ * Serialised with Gson as one JSON object per line of the recording file, so field names are kept short.
+ */
+class SempExchange {
+
+	long t = 0;				// Milliseconds from the start of the recording when the request was sent
+	long ms = 0;			// Milliseconds the broker took to respond (or to fail, if error is set)
+	String method = "";		// HTTP method. e.g. GET, PUT
+	String path = "";		// Encoded path and query, without scheme/host so a recording can be replayed against any base
+	String req = null;		// Request body, if any
+	int code = 0;			// HTTP response status code
+	String msg = "";		// HTTP response status message
+	String type = null;		// Response Content-Type
+	String resp = "";		// Response body
+	String error = null;	// Transport failure instead of a response, e.g. "java.net.SocketTimeoutException: timeout"
+
+	public String getRequestKey() {
+		return requestKey(method, path);
+	}
+
+	public boolean isTransportError() {
+		return error != null;
+	}
+
+	/**
+	 * The path as recorded for a request. Recorder and replayer must both use this so that recordings keep matching.
+	 */
+	static String pathOf(Request request) {
+		String query = request.url().encodedQuery();
+		return request.url().encodedPath() + (query == null ? "" : "?" + query);
+	}
+
+	/**
+	 * The request body as recorded, or null if there is none. Recorder and replayer must both use this so that bodies can be compared.
+	 */
+	static String bodyOf(Request request) throws IOException {
+		if (request.body() == null) {
+			return null;
+		}
+		Buffer requestBody = new Buffer();
+		request.body().writeTo(requestBody);
+		return requestBody.readUtf8();
+	}
+
+	/**
+	 * The key a request is matched on during replay: method and path.
+	 */
+	static String requestKey(Request request) {
+		return requestKey(request.method(), pathOf(request));
+	}
+
+	private static String requestKey(String method, String path) {
+		return method + " " + path;
+	}
+}
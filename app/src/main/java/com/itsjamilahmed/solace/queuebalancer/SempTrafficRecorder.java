@@ -0,0 +1,177 @@
+package com.itsjamilahmed.solace.queuebalancer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * An OkHttp interceptor that captures every SEMP request/response passing through the monitor and action API clients, with timings. <br>
+ * Each exchange is written as one JSON line to the recording file. If the file name ends in ".gz" the recording is gzip compressed. <br>
+ * Requests that fail without a response (e.g. a timeout) are recorded too, with how long they took to fail. <br>
+ * A failure to record never changes what the API client sees. Recording is stopped with an error logged, and the exchange carries on as normal. <br>
+ * The recording is closed by a shutdown hook if the program exits without calling {@link #close()}, e.g. on Ctrl-C. <br>
+ * The recording can later be served back to an unmodified QueueBalancer using {@link SempTrafficReplayer}.
+ */
+public class SempTrafficRecorder implements Interceptor, Closeable {
+
+	private static Logger logger = LogManager.getLogger(SempTrafficRecorder.class);	// A log4j logger to handle all output
+
+	private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+	private final BufferedWriter writer;
+	private final long startNanos = System.nanoTime();
+	private long exchangesRecorded = 0;
+	private boolean closed = false;
+	private final Thread shutdownHook;
+
+	public SempTrafficRecorder(String recordingFile) throws IOException {
+
+		OutputStream out = new FileOutputStream(recordingFile);
+		if (recordingFile.endsWith(".gz")) {
+			// Sync flush so that each recorded exchange reaches the file as it happens. The gzip trailer is still only written on close.
+			out = new GZIPOutputStream(out, true);
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+
+		logger.info("Recording SEMP traffic to: " + recordingFile);
+
+		// A recording of an aborted run is the one most worth keeping, so make sure it still gets closed properly.
+		// log4j may already have been stopped by its own shutdown hook, so report straight to stderr from here.
+		shutdownHook = new Thread(() -> {
+			try {
+				if (closeWriter()) {
+					System.err.println("SEMP traffic recording closed on shutdown after " + exchangesRecorded + " exchanges.");
+				}
+			} catch (IOException e) {
+				System.err.println("Could not close SEMP traffic recording on shutdown: " + e.getMessage());
+			}
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+
+		Request request = chain.request();
+
+		SempExchange exchange = new SempExchange();
+		exchange.method = request.method();
+		exchange.path = SempExchange.pathOf(request);
+
+		try {
+			exchange.req = SempExchange.bodyOf(request);
+		} catch (IOException e) {
+			stopRecording("Could not read SEMP request body for " + exchange.getRequestKey(), e);
+			return chain.proceed(request);
+		}
+
+		long sentNanos = System.nanoTime();
+		exchange.t = (sentNanos - startNanos) / 1_000_000;
+
+		Response response;
+		try {
+			response = chain.proceed(request);
+		} catch (IOException e) {
+			// No response at all, e.g. timeout or connection reset. Record how long it took to fail so replay fails the same way.
+			exchange.ms = (System.nanoTime() - sentNanos) / 1_000_000;
+			exchange.error = e.getClass().getName() + ": " + e.getMessage();
+			record(exchange);
+			throw e;
+		}
+		long receivedNanos = System.nanoTime();
+
+		// The broker has already acted on the request by now, so nothing from here on may fail the exchange for the API client.
+		// e.g. A copy reported as failed would never be followed by its delete, leaving the message duplicated.
+		try {
+			// Peek rather than consume the body, so the API client still gets to read it
+			ResponseBody responseBody = response.peekBody(Long.MAX_VALUE);
+			MediaType contentType = responseBody.contentType();
+
+			exchange.ms = (receivedNanos - sentNanos) / 1_000_000;
+			exchange.code = response.code();
+			exchange.msg = response.message();
+			exchange.type = (contentType == null) ? null : contentType.toString();
+			exchange.resp = responseBody.string();
+		} catch (IOException e) {
+			stopRecording("Could not read SEMP response body for " + exchange.getRequestKey(), e);
+			return response;
+		}
+
+		record(exchange);
+
+		return response;
+	}
+
+	private synchronized void record(SempExchange exchange) {
+
+		if (closed) {
+			// Request still in flight while shutting down, or recording was stopped after an error
+			logger.debug("\tSEMP traffic recording already closed, not recording: " + exchange.getRequestKey());
+			return;
+		}
+		try {
+			writer.write(gson.toJson(exchange));
+			writer.newLine();
+			writer.flush();
+		} catch (IOException e) {
+			stopRecording("Could not write SEMP exchange " + exchange.getRequestKey() + " to recording", e);
+			return;
+		}
+		exchangesRecorded++;
+
+		logger.debug("\tRecorded SEMP exchange " + exchangesRecorded + ": " + exchange.getRequestKey() + " ("
+				+ (exchange.isTransportError() ? exchange.error : exchange.code) + " in " + exchange.ms + "ms)");
+	}
+
+	private synchronized void stopRecording(String reason, IOException e) {
+
+		logger.error(reason + ": " + e.getMessage() + ". SEMP traffic recording stopped after " + exchangesRecorded + " exchanges.");
+		try {
+			closeWriter();
+		} catch (IOException closeFailure) {
+			logger.error("Could not close SEMP traffic recording: " + closeFailure.getMessage());
+		}
+	}
+
+	// Returns false if the recording was already closed
+	private synchronized boolean closeWriter() throws IOException {
+
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		writer.close();
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// Already shutting down, the hook will find the recording closed
+			}
+		}
+		if (closeWriter()) {
+			logger.info("SEMP traffic recording closed after " + exchangesRecorded + " exchanges.");
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package com.itsjamilahmed.solace.queuebalancer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * An OkHttp interceptor that serves a recording made by {@link SempTrafficRecorder} back to the SEMP API clients, without contacting any broker. <br>
+ * Requests are matched in recorded order on method and path, so repeated identical queries (e.g. fetching the next message to move) get the
+ * responses the broker gave at that point in the recording. If recorded exchanges have to be skipped to find a match, a warning is logged. <br>
+ * The request body is then compared with the recorded one, as some requests only differ there. (e.g. which message a copy is for.)
+ * A mismatch is still served the recorded response, but is logged and counted so diverging builds can be spotted. <br>
+ * Each response is held back for its recorded duration divided by the speed factor. (e.g. 1.0 for original speed, 2.0 for twice as fast, 0 for no delay.) <br>
+ * Recorded transport failures (e.g. a timeout) are replayed by throwing an IOException after the same scaled delay.
+ */
+public class SempTrafficReplayer implements Interceptor, Closeable {
+
+	private static Logger logger = LogManager.getLogger(SempTrafficReplayer.class);	// A log4j logger to handle all output
+
+	private final LinkedList<SempExchange> pendingExchanges = new LinkedList<SempExchange>();
+	private final double speedFactor;
+	private final long recordedExchanges;
+	private final long recordedSpanMillis;
+	private final long startNanos;
+	private long exchangesServed = 0;
+	private long requestBodyMismatches = 0;
+	private long exchangesUnmatched = 0;
+	private long outOfOrderServes = 0;
+
+	public SempTrafficReplayer(String recordingFile, double speedFactor) throws IOException {
+
+		if (speedFactor < 0) {
+			throw new IllegalArgumentException("Replay speed factor cannot be negative: " + speedFactor);
+		}
+		this.speedFactor = speedFactor;
+
+		Gson gson = new Gson();
+		InputStream in = new FileInputStream(recordingFile);
+		GzipTrailerTolerantInputStream gzipIn = null;
+		if (recordingFile.endsWith(".gz")) {
+			gzipIn = new GzipTrailerTolerantInputStream(new GZIPInputStream(in));
+			in = gzipIn;
+		}
+
+		// A half written last line is expected from an aborted recording, so only a bad line followed by more exchanges is treated as corrupt.
+		long lineNumber = 0;
+		long badLineNumber = 0;
+		String badLineError = null;
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isBlank()) {
+					continue;
+				}
+				if (badLineNumber > 0) {
+					throw new IOException("Corrupt recording " + recordingFile + " at line " + badLineNumber + ": " + badLineError);
+				}
+				try {
+					pendingExchanges.add(gson.fromJson(line, SempExchange.class));
+				} catch (JsonParseException e) {
+					badLineNumber = lineNumber;
+					badLineError = e.getMessage();
+				}
+			}
+		}
+		if (gzipIn != null && gzipIn.truncation != null) {
+			logger.warn("Recording " + recordingFile + " ends abruptly (" + gzipIn.truncation.getMessage() + "). Replaying the " + pendingExchanges.size() + " exchanges read before that.");
+		}
+		if (badLineNumber > 0) {
+			logger.warn("Skipping incomplete last line " + badLineNumber + " of recording " + recordingFile + ": " + badLineError);
+		}
+		this.recordedExchanges = pendingExchanges.size();
+		this.recordedSpanMillis = pendingExchanges.stream().mapToLong(exchange -> exchange.t + exchange.ms).max().orElse(0);
+
+		logger.info("Replaying " + recordedExchanges + " recorded SEMP exchanges from: " + recordingFile + " at speed factor " + speedFactor);
+
+		// Only start timing the replay once the recording is loaded, so the run time is comparable with the recorded one
+		this.startNanos = System.nanoTime();
+	}
+
+	@Override
+	public Response intercept(Chain chain) throws IOException {
+
+		Request request = chain.request();
+		String requestKey = SempExchange.requestKey(request);
+
+		SempExchange exchange = takeNextMatch(requestKey);
+
+		if (exchange == null) {
+			// The balancer has diverged from the recording. Answer as the broker would with an error, so the balancer's own SEMP error handling kicks in.
+			logger.warn("No recorded response left for SEMP request: " + requestKey);
+			String errorBody = "{\"meta\":{\"error\":{\"code\":-1,\"description\":\"No recorded response for " + requestKey.replace("\"", "\\\"")
+					+ "\",\"status\":\"NOT_RECORDED\"},\"responseCode\":500}}";
+
+			return new Response.Builder()
+					.request(request)
+					.protocol(Protocol.HTTP_1_1)
+					.code(500)
+					.message("Not Recorded")
+					.body(ResponseBody.create(errorBody, MediaType.get("application/json")))
+					.build();
+		}
+
+		String requestBody = SempExchange.bodyOf(request);
+		if (!Objects.equals(exchange.req, requestBody)) {
+			recordBodyMismatch(requestKey, exchange.req, requestBody);
+		}
+
+		delay(exchange, requestKey);
+
+		if (exchange.isTransportError()) {
+			logger.debug("\tReplayed SEMP transport failure: " + requestKey + " (" + exchange.error + ")");
+			throw new IOException("Replayed: " + exchange.error);
+		}
+
+		logger.debug("\tReplayed SEMP exchange: " + requestKey + " (" + exchange.code + ")");
+
+		return new Response.Builder()
+				.request(request)
+				.protocol(Protocol.HTTP_1_1)
+				.code(exchange.code)
+				.message(exchange.msg == null ? "" : exchange.msg)
+				.body(ResponseBody.create(exchange.resp == null ? "" : exchange.resp,
+						exchange.type == null ? null : MediaType.parse(exchange.type)))
+				.build();
+	}
+
+	// A gzip recording that was never closed has no trailer, but everything sync flushed up to that point is still usable.
+	// Turn the resulting EOFException into a plain end of stream here, so the reader does not lose the lines it already decoded.
+	private static class GzipTrailerTolerantInputStream extends FilterInputStream {
+
+		private EOFException truncation = null;
+
+		GzipTrailerTolerantInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (truncation != null) {
+				return -1;
+			}
+			try {
+				return super.read();
+			} catch (EOFException e) {
+				truncation = e;
+				return -1;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (truncation != null) {
+				return -1;
+			}
+			try {
+				return super.read(b, off, len);
+			} catch (EOFException e) {
+				truncation = e;
+				return -1;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (truncation != null) ? 0 : super.available();
+		}
+	}
+
+	private void delay(SempExchange exchange, String requestKey) throws IOException {
+
+		if (speedFactor > 0 && exchange.ms > 0) {
+			try {
+				Thread.sleep((long) (exchange.ms / speedFactor));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while replaying SEMP response for: " + requestKey, e);
+			}
+		}
+	}
+
+	private synchronized SempExchange takeNextMatch(String requestKey) {
+
+		// Earliest not yet served exchange for this request wins. Any skipped over stay pending in case the balancer asks for them later.
+		// Skipping means the balancer is no longer asking what it asked in the recording, so the broker state served may be out of order.
+		Iterator<SempExchange> it = pendingExchanges.iterator();
+		long skipped = 0;
+		while (it.hasNext()) {
+			SempExchange exchange = it.next();
+			if (exchange.getRequestKey().equals(requestKey)) {
+				it.remove();
+				exchangesServed++;
+				if (skipped > 0) {
+					outOfOrderServes++;
+					logger.warn("Replay diverged from recording: skipped over " + skipped + " recorded exchanges to serve SEMP request: " + requestKey);
+				}
+				return exchange;
+			}
+			skipped++;
+		}
+		exchangesUnmatched++;
+		return null;
+	}
+
+	private synchronized void recordBodyMismatch(String requestKey, String recordedBody, String requestBody) {
+
+		requestBodyMismatches++;
+		logger.warn("Replay diverged from recording: request body differs for SEMP request: " + requestKey
+				+ ". Recorded: " + recordedBody + " Replayed: " + requestBody);
+	}
+
+	synchronized long getRequestBodyMismatches() {
+		return requestBodyMismatches;
+	}
+
+	synchronized long getOutOfOrderServes() {
+		return outOfOrderServes;
+	}
+
+	@Override
+	public synchronized void close() {
+
+		long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+		// The recorded run time includes the original balancer's own processing between requests, so compare it at speed factor 1.0.
+		logger.info("SEMP traffic replay finished in " + elapsedMillis + "ms (recorded run took " + recordedSpanMillis + "ms). Served " + exchangesServed
+				+ " of " + recordedExchanges + " recorded exchanges. Unmatched requests: " + exchangesUnmatched
+				+ ". Served out of order: " + outOfOrderServes + ". Request body mismatches: " + requestBodyMismatches + ". Unused recorded exchanges: " + pendingExchanges.size());
+	}
+}
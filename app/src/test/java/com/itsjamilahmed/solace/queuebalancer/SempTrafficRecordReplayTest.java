@@ -0,0 +1,337 @@
+package com.itsjamilahmed.solace.queuebalancer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class SempTrafficRecordReplayTest {
+
+	private static final String QUEUE_URL = "http://broker:8080/SEMP/v2/monitor/msgVpns/vpn/queues/q1?select=msgs.count";
+	private static final String COPY_URL = "http://broker:8080/SEMP/v2/action/msgVpns/vpn/queues/q2/copyMsgFromQueue";
+	private static final String COPY_BODY = "{\"replicationGroupMsgId\":\"rmid1\",\"sourceQueueName\":\"q1\"}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Stands in for the broker at the end of the interceptor chain. Serves each queued body in turn, or throws a queued IOException.
+	private static class FakeBroker implements Interceptor {
+
+		private static class Outcome {
+			long delayMillis = 0;
+			String body = null;
+			IOException failure = null;
+		}
+
+		private final LinkedList<Outcome> outcomes = new LinkedList<Outcome>();
+
+		FakeBroker respond(String body) {
+			return respondAfter(0, body);
+		}
+
+		FakeBroker respondAfter(long delayMillis, String body) {
+			Outcome outcome = new Outcome();
+			outcome.delayMillis = delayMillis;
+			outcome.body = body;
+			outcomes.add(outcome);
+			return this;
+		}
+
+		FakeBroker failWith(IOException e) {
+			Outcome outcome = new Outcome();
+			outcome.failure = e;
+			outcomes.add(outcome);
+			return this;
+		}
+
+		@Override
+		public Response intercept(Chain chain) throws IOException {
+			Outcome outcome = outcomes.removeFirst();
+			if (outcome.delayMillis > 0) {
+				try {
+					Thread.sleep(outcome.delayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (outcome.failure != null) {
+				throw outcome.failure;
+			}
+			return new Response.Builder()
+					.request(chain.request())
+					.protocol(Protocol.HTTP_1_1)
+					.code(200)
+					.message("OK")
+					.body(ResponseBody.create(outcome.body, MediaType.get("application/json")))
+					.build();
+		}
+	}
+
+	private static OkHttpClient clientWith(Interceptor... interceptors) {
+		OkHttpClient.Builder builder = new OkHttpClient.Builder();
+		for (Interceptor interceptor : interceptors) {
+			builder.addInterceptor(interceptor);
+		}
+		return builder.build();
+	}
+
+	private static Request get(String url) {
+		return new Request.Builder().url(url).build();
+	}
+
+	private static Request put(String url, String body) {
+		return new Request.Builder().url(url).put(RequestBody.create(body, MediaType.get("application/json"))).build();
+	}
+
+	private static String call(OkHttpClient client, Request request) throws IOException {
+		try (Response response = client.newCall(request).execute()) {
+			return response.code() + " " + response.body().string();
+		}
+	}
+
+	private String record(String fileName, boolean close) throws IOException {
+
+		String recordingFile = new File(folder.getRoot(), fileName).getPath();
+		SempTrafficRecorder recorder = new SempTrafficRecorder(recordingFile);
+		FakeBroker broker = new FakeBroker()
+				.respond("{\"depth\":10}")
+				.respond("{\"copied\":true}")
+				.respond("{\"depth\":9}");
+		OkHttpClient client = clientWith(recorder, broker);
+
+		assertEquals("200 {\"depth\":10}", call(client, get(QUEUE_URL)));
+		assertEquals("200 {\"copied\":true}", call(client, put(COPY_URL, COPY_BODY)));
+		assertEquals("200 {\"depth\":9}", call(client, get(QUEUE_URL)));
+
+		if (close) {
+			recorder.close();
+		}
+		return recordingFile;
+	}
+
+	@Test
+	public void replaysGzipRecordingInRecordedOrder() throws IOException {
+
+		String recordingFile = record("run.semp.gz", true);
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+		OkHttpClient client = clientWith(replayer);
+
+		assertEquals("200 {\"depth\":10}", call(client, get(QUEUE_URL)));
+		assertEquals("200 {\"copied\":true}", call(client, put(COPY_URL, COPY_BODY)));
+		assertEquals("200 {\"depth\":9}", call(client, get(QUEUE_URL)));
+		assertEquals(0, replayer.getOutOfOrderServes());
+		assertEquals(0, replayer.getRequestBodyMismatches());
+		replayer.close();
+	}
+
+	@Test
+	public void servesEarliestMatchWhenRequestsDiverge() throws IOException {
+
+		String recordingFile = record("run.semp", true);
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+		OkHttpClient client = clientWith(replayer);
+
+		// Skip the first depth query, the copy should still be found
+		assertEquals("200 {\"copied\":true}", call(client, put(COPY_URL, COPY_BODY)));
+		assertEquals("200 {\"depth\":10}", call(client, get(QUEUE_URL)));
+		assertEquals("200 {\"depth\":9}", call(client, get(QUEUE_URL)));
+		assertEquals(1, replayer.getOutOfOrderServes());
+		replayer.close();
+	}
+
+	@Test
+	public void answersNotRecordedOnceRecordingIsUsedUp() throws IOException {
+
+		String recordingFile = record("run.semp", true);
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+		OkHttpClient client = clientWith(replayer);
+
+		call(client, get(QUEUE_URL));
+		call(client, get(QUEUE_URL));
+
+		String response = call(client, get(QUEUE_URL));
+		assertTrue(response, response.startsWith("500 "));
+		assertTrue(response, response.contains("NOT_RECORDED"));
+		replayer.close();
+	}
+
+	@Test
+	public void replaysTransportFailure() throws IOException {
+
+		String recordingFile = new File(folder.getRoot(), "timeout.semp").getPath();
+		SempTrafficRecorder recorder = new SempTrafficRecorder(recordingFile);
+		OkHttpClient recordingClient = clientWith(recorder, new FakeBroker().failWith(new SocketTimeoutException("timeout")));
+
+		try {
+			call(recordingClient, put(COPY_URL, "{}"));
+			fail("Expected the recorded call to fail");
+		} catch (SocketTimeoutException e) {
+			// Recorder must pass the original failure through
+		}
+		recorder.close();
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+		try {
+			call(clientWith(replayer), put(COPY_URL, "{}"));
+			fail("Expected the replayed call to fail");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("java.net.SocketTimeoutException: timeout"));
+		}
+		replayer.close();
+	}
+
+	@Test
+	public void replaysGzipRecordingThatWasNeverClosed() throws IOException {
+
+		// As left behind by a run that was killed: sync flushed, but no gzip trailer
+		String recordingFile = record("killed.semp.gz", false);
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+		OkHttpClient client = clientWith(replayer);
+
+		assertEquals("200 {\"depth\":10}", call(client, get(QUEUE_URL)));
+		assertEquals("200 {\"copied\":true}", call(client, put(COPY_URL, COPY_BODY)));
+		assertEquals("200 {\"depth\":9}", call(client, get(QUEUE_URL)));
+		replayer.close();
+	}
+
+	@Test
+	public void skipsHalfWrittenLastLine() throws IOException {
+
+		String recordingFile = record("run.semp", true);
+		Files.write(new File(recordingFile).toPath(), "{\"t\":12,\"ms\":3,\"meth".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+
+		assertEquals("200 {\"depth\":10}", call(clientWith(replayer), get(QUEUE_URL)));
+		replayer.close();
+	}
+
+	@Test
+	public void reportsCorruptLineInsideRecording() throws IOException {
+
+		File recordingFile = folder.newFile("corrupt.semp");
+		Files.write(recordingFile.toPath(), ("{\"method\":\"GET\",\"path\":\"/a\",\"code\":200}\n"
+				+ "not json\n"
+				+ "{\"method\":\"GET\",\"path\":\"/b\",\"code\":200}\n").getBytes(StandardCharsets.UTF_8));
+
+		try {
+			new SempTrafficReplayer(recordingFile.getPath(), 0);
+			fail("Expected a corrupt recording to be rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+		}
+	}
+
+	@Test
+	public void countsRequestBodyMismatch() throws IOException {
+
+		String recordingFile = record("run.semp", true);
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, 0);
+		OkHttpClient client = clientWith(replayer);
+
+		// Same path, but copying a different message. Still served, but must not pass unnoticed.
+		call(client, get(QUEUE_URL));
+		assertEquals("200 {\"copied\":true}", call(client, put(COPY_URL, "{\"replicationGroupMsgId\":\"rmid2\",\"sourceQueueName\":\"q1\"}")));
+		assertEquals(1, replayer.getRequestBodyMismatches());
+		replayer.close();
+	}
+
+	@Test
+	public void recordsTimings() throws IOException {
+
+		String recordingFile = new File(folder.getRoot(), "timed.semp").getPath();
+		SempTrafficRecorder recorder = new SempTrafficRecorder(recordingFile);
+		OkHttpClient client = clientWith(recorder, new FakeBroker().respondAfter(200, "{}").respondAfter(100, "{}"));
+
+		call(client, get(QUEUE_URL));
+		call(client, get(QUEUE_URL));
+		recorder.close();
+
+		Gson gson = new Gson();
+		List<String> lines = Files.readAllLines(new File(recordingFile).toPath(), StandardCharsets.UTF_8);
+		assertEquals(2, lines.size());
+		SempExchange first = gson.fromJson(lines.get(0), SempExchange.class);
+		SempExchange second = gson.fromJson(lines.get(1), SempExchange.class);
+
+		assertTrue("first ms: " + first.ms, first.ms >= 200);
+		assertTrue("second ms: " + second.ms, second.ms >= 100);
+		assertTrue("second t: " + second.t + " first t: " + first.t, second.t >= first.t + first.ms);
+	}
+
+	private long timeReplayedCall(String recordingFile, double speedFactor) throws IOException {
+
+		SempTrafficReplayer replayer = new SempTrafficReplayer(recordingFile, speedFactor);
+		OkHttpClient client = clientWith(replayer);
+
+		long startNanos = System.nanoTime();
+		assertEquals("200 {}", call(client, get(QUEUE_URL)));
+		long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000;
+
+		replayer.close();
+		return elapsedMillis;
+	}
+
+	@Test
+	public void replaysAtOriginalAndScaledSpeed() throws IOException {
+
+		File recordingFile = folder.newFile("slow.semp");
+		Files.write(recordingFile.toPath(), ("{\"t\":0,\"ms\":400,\"method\":\"GET\",\"path\":\"/SEMP/v2/monitor/msgVpns/vpn/queues/q1?select=msgs.count\","
+				+ "\"code\":200,\"msg\":\"OK\",\"type\":\"application/json\",\"resp\":\"{}\"}\n").getBytes(StandardCharsets.UTF_8));
+
+		long originalSpeed = timeReplayedCall(recordingFile.getPath(), 1.0);
+		assertTrue("at 1.0: " + originalSpeed + "ms", originalSpeed >= 400 && originalSpeed < 1400);
+
+		long doubleSpeed = timeReplayedCall(recordingFile.getPath(), 2.0);
+		assertTrue("at 2.0: " + doubleSpeed + "ms", doubleSpeed >= 200 && doubleSpeed < 400);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeSpeedFactor() throws IOException {
+
+		new SempTrafficReplayer(record("run.semp", true), -1.0);
+	}
+
+	@Test
+	public void recordingFailureDoesNotFailTheExchange() throws IOException {
+
+		// Every write to /dev/full fails with "No space left on device"
+		assumeTrue(new File("/dev/full").exists());
+
+		SempTrafficRecorder recorder = new SempTrafficRecorder("/dev/full");
+		OkHttpClient client = clientWith(recorder, new FakeBroker().respond("{\"copied\":true}").respond("{\"deleted\":true}"));
+
+		assertEquals("200 {\"copied\":true}", call(client, put(COPY_URL, COPY_BODY)));
+		assertEquals("200 {\"deleted\":true}", call(client, put(COPY_URL, COPY_BODY)));
+		recorder.close();
+	}
+}